@@ -12,6 +12,19 @@
 
 package MultiTouchKitUI;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+
 import processing.core.*;
 import processing.serial.*;
 import blobDetection.*;
@@ -78,6 +91,27 @@ public class MultiTouchKit {
 	private boolean baseLineSet = false; //auxiliary variable, false while the Baseline is not set yet
 	private boolean calibrationError = false; //auxiliary variable, true if the values for the calibration are lower than the calibrationErrorThreshold
 	private int calibrationErrorThreshold = -40; // if the values for inital calibration are lower than this a warning will be printed
+	private long[][] bt_squares; // sum of the squared values collected during calibration, helps to compute the noise
+	private float[][] noise; // standard deviation of the values collected during calibration for every tx/rx intersection
+	private boolean[] rowReceived; // true for every tx line that has been received from the arduino at least once
+
+	//variables for the calibration profile
+	private static final int PROFILE_MAGIC = 0x4D544B50; // "MTKP", marks a file as calibration profile
+	private static final int PROFILE_VERSION = 1; // increase this if the layout of the profile changes
+	private boolean useProfile = false; // true: save the calibration to a profile and load it on the next start
+	private String portName = ""; // name of the serial port, used to find the matching profile
+	private boolean validatingProfile = false; // true while a loaded profile is compared against the first live frames
+	private int validationFrames = 5; // how many frames are used to check if a loaded profile still matches the sensor
+	private int validatedFrames = 0; // auxiliary variable, how many frames have been checked so far
+	private int raisedCells = 0; // auxiliary variable, how many cells were higher than the profile so far
+	private float maxRaisedRatio = 0.5f; // if more cells than this (ratio of all cells) are higher, the profile is discarded, a touch only raises a few cells
+	private float noiseFactor = 4.0f; // a cell counts as higher if it is higher than the Baseline by more than noiseFactor * noise
+	private int completedFrames = 0; // auxiliary variable, counts the frames (all tx lines) received from the arduino
+	private int checkedFrame = 0; // auxiliary variable, the last frame that was checked against the profile
+	private long profileLoadTime; // auxiliary variable, when the profile was loaded, needed for the validation timeout
+	private HashSet<String> tuningSet = new HashSet<String>(); // tuning parameters set by the sketch, they are not restored from the profile
+	private boolean profileSavePending = false; // true while the frames after a calibration are checked before saving the profile
+	private int calibratedFrame = 0; // auxiliary variable, the frame in which the calibration was done
 
 	//variables/objects for interpolation and blobdetection
 	private OpenCV opencv; // openCV object for interpolation
@@ -122,6 +156,9 @@ public class MultiTouchKit {
 		bt_average = new long[rx][tx];
 
 		BaseLine = new long[rx][tx];
+		bt_squares = new long[rx][tx];
+		noise = new float[rx][tx];
+		rowReceived = new boolean[tx];
 		
 		//creating the font to draw on screen later
 		PFont f;
@@ -156,6 +193,19 @@ public class MultiTouchKit {
 			setColors();
 		}
 
+		// a loaded profile is checked against the first frames, skipping the first one as it might be incomplete
+		if (validatingProfile && completedFrames > 1 && completedFrames != checkedFrame) {
+			checkedFrame = completedFrames;
+			validateProfile();
+		}
+
+		// if no complete frame arrives (e.g. the sensor is wired differently), the profile can't be validated,
+		// so after waittime (counted from the first received line) the normal calibration is done
+		if (validatingProfile && !init && (System.nanoTime() - Math.max(profileLoadTime, starttime)) > waittime) {
+			System.out.println("Calibration profile could not be checked, calibrating! Don't touch please");
+			restartCalibration();
+		}
+
 		// the Baseline is set here
 		if ((System.nanoTime() - starttime) > waittime && !baseLineSet) {
 			baseLineSet = true;
@@ -163,9 +213,10 @@ public class MultiTouchKit {
 			
 			//check that bt_average is not 0, so that we can not accidentally divide by 0
 			//if it is 0, the sketch will take more time to collect values to get a proper Baseline
+			//(tx lines that were never received keep a Baseline of 0)
 			for (int i = 0; i < rx; i++) {
 				for (int j = 0; j < tx; j++) {
-					if(bt_average[i][j] == 0) {
+					if(bt_average[i][j] == 0 && rowReceived[j]) {
 						baseLineSet = false;
 						starttime = System.nanoTime();
 						System.out.println("Calibration not done yet, need more time! Don't touch please");
@@ -178,14 +229,36 @@ public class MultiTouchKit {
 				for (int i = 0; i < rx; i++) {
 					for (int j = 0; j < tx; j++) {
 						System.out.println("Debug, j: "+j+"  i: "+i);
+						if (bt_average[i][j] == 0) {
+							continue;
+						}
+						double mean = (double) BaseLine[i][j] / bt_average[i][j];
+						double variance = (double) bt_squares[i][j] / bt_average[i][j] - mean * mean;
+						noise[i][j] = (float) Math.sqrt(Math.max(0, variance));
 						BaseLine[i][j] = BaseLine[i][j] / bt_average[i][j];
 					}
 				}
 				System.out.println("Calibration done, ready to go");
+				// the profile is only saved after a few frames without a calibration problem,
+				// so a calibration done while the sensor was touched doesn't overwrite a good profile
+				if (useProfile) {
+					profileSavePending = true;
+					calibratedFrame = completedFrames;
+				}
 			}
 			
 		}
 
+		if (profileSavePending) {
+			if (calibrationError) {
+				profileSavePending = false;
+				System.out.println("Calibration profile not saved because of the problem with the calibration");
+			} else if (completedFrames - calibratedFrame > validationFrames) {
+				profileSavePending = false;
+				saveProfile();
+			}
+		}
+
 		// drawing to the screen if autoDraw == true
 		if (autoDraw) {
 			interpolate();
@@ -254,6 +327,13 @@ public class MultiTouchKit {
 
 					int t = Integer.parseInt(splitString[0]); // TX of the received input
 
+					rowReceived[t] = true;
+
+					// the last tx line completes a frame
+					if (t == tx - 1) {
+						completedFrames++;
+					}
+
 					for (int i = 0; i < splitString.length; i++) {
 						if (i > 0) {
 							if(!splitString[i].matches("[0-9]+")) {break;}
@@ -276,7 +356,8 @@ public class MultiTouchKit {
 	 */
 	private void connect(int serialPort) {
 		if (serialPort <= Serial.list().length) {
-			myPort = new Serial(parent, Serial.list()[serialPort], 115200);
+			portName = Serial.list()[serialPort];
+			myPort = new Serial(parent, portName, 115200);
 			myPort.clear(); // clear the buffer
 			myPort.bufferUntil(10); // always buffer until the newline symbol
 			connected = true;
@@ -328,6 +409,14 @@ public class MultiTouchKit {
 		return BaseLine;
 	}
 
+	/**
+	 * 
+	 * @return the standard deviation of the values collected during calibration for every tx/rx intersection
+	 */
+	public float[][] getNoise() {
+		return noise;
+	}
+
 	/**
 	 * option to draw the blobs
 	 * 
@@ -374,6 +463,7 @@ public class MultiTouchKit {
 	 */
 	public void setThresh(float newThresh) {
 		this.thresh = newThresh;
+		tuningSet.add("thresh");
 		theBlobDetection.setThreshold(thresh);
 	}
 
@@ -386,6 +476,7 @@ public class MultiTouchKit {
 	 */
 	public void setColorrange(int colorange) {
 		this.colorrange = colorange;
+		tuningSet.add("colorrange");
 	}
 
 	/** 
@@ -394,6 +485,7 @@ public class MultiTouchKit {
 	 */
 	public void setMinInputRange(int minInputRange) {
 		this.minInputRange = minInputRange;
+		tuningSet.add("minInputRange");
 	}
 
 	/** 
@@ -404,6 +496,7 @@ public class MultiTouchKit {
 	 */
 	public void setMaxInputRange(int maxInputRange) {
 		this.maxInputRange = maxInputRange;
+		tuningSet.add("maxInputRange");
 	}
 
 	/**  
@@ -412,6 +505,7 @@ public class MultiTouchKit {
 	 */
 	public void setMinOutputRange(int minOutputRange) {
 		this.minOutputRange = minOutputRange;
+		tuningSet.add("minOutputRange");
 	}
 
 	/** 
@@ -420,6 +514,7 @@ public class MultiTouchKit {
 	 */
 	public void setMaxOutputRange(int maxOutputRange) {
 		this.maxOutputRange = maxOutputRange;
+		tuningSet.add("maxOutputRange");
 	}
 
 	/** 
@@ -428,6 +523,7 @@ public class MultiTouchKit {
 	 */
 	public void setMaxNoiseThreshhold(int maxNoiseThreshhold) {
 		this.maxNoiseThreshold = maxNoiseThreshhold;
+		tuningSet.add("maxNoiseThreshold");
 	}
 
 	/**
@@ -437,6 +533,7 @@ public class MultiTouchKit {
 	 */
 	public void setAdjust(boolean adjust) {
 		this.adjust = adjust;
+		tuningSet.add("adjust");
 	}
 
 	/**
@@ -456,6 +553,7 @@ public class MultiTouchKit {
 	 */
 	public void setNoiseThreshhold(int noiseThreshhold) {
 		this.noiseThreshold = noiseThreshhold;
+		tuningSet.add("noiseThreshold");
 	}
 
 	/**
@@ -494,6 +592,227 @@ public class MultiTouchKit {
 		calibrationErrorThreshold = t;
 	}
 
+	/**
+	 * enable/disable the calibration profile
+	 * if enabled, the Baseline, the noise and the tuning parameters are saved to a file in the sketch folder after calibration,
+	 * on the next start they are loaded from there, so the sensor can be used right away instead of waiting for the calibration.
+	 * The profile is checked against the first few frames and a full calibration is done if it doesn't match anymore.
+	 * Tuning parameters set by the sketch (e.g. with setMaxInputRange()) are always kept, the other ones are restored from the profile.
+	 * call this in "setup()"
+	 * 
+	 * @param useProfile true: save and load the calibration profile, false: always calibrate at the beginning
+	 */
+	public void useProfile(boolean useProfile) {
+		this.useProfile = useProfile;
+		if (useProfile && !baseLineSet) {
+			loadProfile();
+		}
+	}
+
+	/**
+	 * set how many frames are used to check if a loaded profile still matches the sensor
+	 * 
+	 * @param frames number of frames
+	 */
+	public void setProfileValidationFrames(int frames) {
+		validationFrames = Math.max(1, frames);
+	}
+
+	/**
+	 * set how many of the cells may be higher than a loaded profile before it is discarded,
+	 * a touch makes a few cells higher, but if most of them are higher the sensor was swapped or drifted
+	 * 
+	 * @param ratio ratio of all cells, between 0 and 1 (0.5 by default)
+	 */
+	public void setMaxRaisedRatio(float ratio) {
+		maxRaisedRatio = Math.max(0, Math.min(1, ratio));
+	}
+
+	/**
+	 * the profile is saved in the sketch folder, its name depends on the size of the sensor and the serial port
+	 * 
+	 * @return the file of the calibration profile
+	 */
+	public File getProfileFile() {
+		return new File(parent.sketchPath("mtk_profile_" + tx + "x" + rx + "_" + portName.replaceAll("[^A-Za-z0-9]+", "_") + ".bin"));
+	}
+
+	/**
+	 * saves the Baseline, the noise and the tuning parameters to the calibration profile,
+	 * only possible once the calibration is done or a loaded profile has been checked
+	 */
+	public void saveProfile() {
+		if (!baseLineSet || validatingProfile) {
+			System.out.println("Calibration profile not saved, the calibration is not done yet");
+			return;
+		}
+		File file = getProfileFile();
+		// write to a temporary file first and then replace the profile with it,
+		// so the old profile stays intact if the sketch is stopped while writing
+		File tmp = new File(file.getPath() + ".tmp");
+		try (FileOutputStream fileOut = new FileOutputStream(tmp);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+			out.writeInt(PROFILE_MAGIC);
+			out.writeInt(PROFILE_VERSION);
+			out.writeInt(tx);
+			out.writeInt(rx);
+			out.writeUTF(portName);
+
+			// tuning parameters
+			out.writeInt(minInputRange);
+			out.writeInt(maxInputRange);
+			out.writeInt(minOutputRange);
+			out.writeInt(maxOutputRange);
+			out.writeInt(colorrange);
+			out.writeBoolean(adjust);
+			out.writeInt(maxNoiseThreshold);
+			out.writeInt(noiseThreshold);
+			out.writeFloat(thresh);
+
+			for (int i = 0; i < rx; i++) {
+				for (int j = 0; j < tx; j++) {
+					out.writeLong(BaseLine[i][j]);
+					out.writeFloat(noise[i][j]);
+				}
+			}
+			out.flush();
+			fileOut.getFD().sync(); // make sure the data is on the disk before the profile is replaced
+		} catch (IOException e) {
+			System.out.println("Error: could not save the calibration profile: " + e.getMessage());
+			tmp.delete();
+			return;
+		}
+		try {
+			try {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			System.out.println("Calibration profile saved to " + file.getName());
+		} catch (IOException e) {
+			System.out.println("Error: could not save the calibration profile: " + e.getMessage());
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * loads the calibration profile if there is one for this sensor and serial port,
+	 * the loaded Baseline is used right away but is checked against the first frames (see validateProfile())
+	 * 
+	 * @return true if the profile was loaded
+	 */
+	public boolean loadProfile() {
+		File file = getProfileFile();
+		if (!file.isFile()) {
+			return false;
+		}
+		long[][] loadedBaseLine = new long[rx][tx];
+		float[][] loadedNoise = new float[rx][tx];
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != PROFILE_MAGIC || in.readInt() != PROFILE_VERSION || in.readInt() != tx
+					|| in.readInt() != rx || !in.readUTF().equals(portName)) {
+				System.out.println("Calibration profile " + file.getName() + " doesn't match, calibrating");
+				return false;
+			}
+
+			int loadedMinInputRange = in.readInt();
+			int loadedMaxInputRange = in.readInt();
+			int loadedMinOutputRange = in.readInt();
+			int loadedMaxOutputRange = in.readInt();
+			int loadedColorrange = in.readInt();
+			boolean loadedAdjust = in.readBoolean();
+			int loadedMaxNoiseThreshold = in.readInt();
+			int loadedNoiseThreshold = in.readInt();
+			float loadedThresh = in.readFloat();
+
+			for (int i = 0; i < rx; i++) {
+				for (int j = 0; j < tx; j++) {
+					loadedBaseLine[i][j] = in.readLong();
+					loadedNoise[i][j] = in.readFloat();
+				}
+			}
+
+			// only apply the profile once it was read completely,
+			// the tuning parameters the sketch has set itself are kept
+			if (!tuningSet.contains("minInputRange")) {minInputRange = loadedMinInputRange;}
+			if (!tuningSet.contains("maxInputRange")) {maxInputRange = loadedMaxInputRange;}
+			if (!tuningSet.contains("minOutputRange")) {minOutputRange = loadedMinOutputRange;}
+			if (!tuningSet.contains("maxOutputRange")) {maxOutputRange = loadedMaxOutputRange;}
+			if (!tuningSet.contains("colorrange")) {colorrange = loadedColorrange;}
+			if (!tuningSet.contains("adjust")) {adjust = loadedAdjust;}
+			if (!tuningSet.contains("maxNoiseThreshold")) {maxNoiseThreshold = loadedMaxNoiseThreshold;}
+			if (!tuningSet.contains("noiseThreshold")) {noiseThreshold = loadedNoiseThreshold;}
+			if (!tuningSet.contains("thresh")) {
+				thresh = loadedThresh;
+				theBlobDetection.setThreshold(thresh);
+			}
+		} catch (IOException e) {
+			System.out.println("Error: could not load the calibration profile: " + e.getMessage());
+			return false;
+		}
+
+		BaseLine = loadedBaseLine;
+		noise = loadedNoise;
+		baseLineSet = true;
+		validatingProfile = true;
+		validatedFrames = 0;
+		raisedCells = 0;
+		checkedFrame = completedFrames;
+		profileLoadTime = System.nanoTime();
+		System.out.println("Calibration profile loaded, checking it against the sensor");
+		return true;
+	}
+
+	/**
+	 * compares the latest frame with the loaded Baseline.
+	 * A touch only makes the values higher than the Baseline, so if any cell is lower than the Baseline by more than
+	 * calibrationErrorThreshold (the same check that prints the calibration warning), the sensor drifted
+	 * or the profile was calibrated while the sensor was touched, and the profile is discarded right away.
+	 * A touch is local, so if most of the cells are higher than the Baseline by more than noiseThreshold and noiseFactor * noise,
+	 * the sensor was swapped or drifted upwards, and the profile is discarded after validationFrames frames.
+	 * In both cases the calibration is started again
+	 */
+	private void validateProfile() {
+		boolean lower = false;
+		for (int i = 0; i < rx; i++) {
+			for (int j = 0; j < tx; j++) {
+				float tolerance = Math.max(noiseThreshold, noiseFactor * noise[i][j]);
+				if (calibrationErrorThreshold > rawValues[j][i] - BaseLine[i][j]) {
+					lower = true;
+				} else if (rawValues[j][i] - BaseLine[i][j] > tolerance) {
+					raisedCells++;
+				}
+			}
+		}
+		validatedFrames++;
+
+		if (!lower && validatedFrames < validationFrames) {
+			return;
+		}
+		validatingProfile = false;
+
+		if (lower || raisedCells > maxRaisedRatio * rx * tx * validatedFrames) {
+			System.out.println("Calibration profile doesn't match the sensor anymore, calibrating! Don't touch please");
+			restartCalibration();
+		} else {
+			System.out.println("Calibration profile matches, ready to go");
+		}
+	}
+
+	/**
+	 * discards the loaded profile and starts the normal calibration
+	 */
+	private void restartCalibration() {
+		validatingProfile = false;
+		BaseLine = new long[rx][tx];
+		bt_average = new long[rx][tx];
+		bt_squares = new long[rx][tx];
+		noise = new float[rx][tx];
+		calibrationError = false;
+		baseLineSet = false;
+		starttime = System.nanoTime();
+	}
+
 	/**
 	 * rescales "img" to "scaledbc", either using cubic or nearest neighbor
 	 * interpolation
@@ -570,10 +889,16 @@ public class MultiTouchKit {
 			for (int j = 0; j < tx; j++) {
 
 				if (baseLineSet == false) {
-					BaseLine[i][j] = (BaseLine[i][j] + rawValues[j][i]);
-					bt_average[i][j] = bt_average[i][j] + 1;
+					// only collect values of tx lines that were received,
+					// the lines that didn't arrive yet are still 0 and would distort the Baseline and the noise
+					if (rowReceived[j]) {
+						BaseLine[i][j] = (BaseLine[i][j] + rawValues[j][i]);
+						bt_squares[i][j] = bt_squares[i][j] + (long) rawValues[j][i] * rawValues[j][i];
+						bt_average[i][j] = bt_average[i][j] + 1;
+					}
 				} else {
-					if(calibrationErrorThreshold > rawValues[j][i] - BaseLine[i][j]) {
+					// while a loaded profile is validated, a mismatch is handled by validateProfile()
+					if(!validatingProfile && calibrationErrorThreshold > rawValues[j][i] - BaseLine[i][j]) {
 						calibrationError = true;
 					}
 					float value = parent.max(0, rawValues[j][i] - BaseLine[i][j]);